@@ -4,9 +4,11 @@ import org.apache.log4j.*;
 import org.apache.log4j.LogManager;
 import org.apache.log4j.Logger;
 import org.apache.log4j.helpers.AppenderAttachableImpl;
+import org.apache.log4j.helpers.LogLog;
 import org.apache.log4j.spi.AppenderAttachable;
 import org.apache.log4j.spi.LoggingEvent;
 
+import java.io.File;
 import java.io.IOException;
 import java.text.MessageFormat;
 import java.util.*;
@@ -23,6 +25,11 @@ public class BufferingForwardingAppender extends RollingFileAppender
      */
     public static final int DEFAULT_BUFFER_SIZE = 128;
 
+    /**
+     * The default group commit window is set to 5 milliseconds.
+     */
+    public static final long DEFAULT_GROUP_COMMIT_WINDOW = 5;
+
     private boolean concurrent;
 
     public boolean isConcurrent() {
@@ -78,6 +85,46 @@ public class BufferingForwardingAppender extends RollingFileAppender
      */
     private boolean blocking = true;
 
+    /**
+     * Should flushed bursts be recorded in an {@link IncidentIndex}.
+     */
+    private boolean incidentIndex = false;
+
+    /**
+     * Sidecar index of flushed bursts, null if disabled.
+     */
+    private IncidentIndex index;
+
+    /**
+     * Trigger event of the burst being flushed, null outside a flush.
+     */
+    private LoggingEvent incidentTrigger;
+
+    /**
+     * Byte offset in the current file where the burst being flushed starts.
+     */
+    private long incidentOffset;
+
+    /**
+     * Number of events of the burst written to the current file so far.
+     */
+    private int incidentEvents;
+
+    /**
+     * Durability of flushed bursts.
+     */
+    private Durability durability = Durability.NONE;
+
+    /**
+     * Time a group commit leader waits for other flushes, in milliseconds.
+     */
+    private long groupCommitWindow = DEFAULT_GROUP_COMMIT_WINDOW;
+
+    /**
+     * Forces the file to disk and measures the latency.
+     */
+    private final FileSync fileSync = new FileSync();
+
 
     public BufferingForwardingAppender() {
         super();
@@ -178,8 +225,7 @@ public class BufferingForwardingAppender extends RollingFileAppender
 
         if (event.getLevel().isGreaterOrEqual(this.getTriggerThreshold())) {
             System.out.println("Forwarding buffer with " + buffer.size() + ": " + event.getLevel() + ":" + event.getMessage());
-            buffer.stream().forEach(e -> BufferingForwardingAppender.super.append(e));
-            buffer.clear();
+            forwardBuffer(event);
         }
         //
         //   if dispatcher thread has died then
@@ -268,6 +314,201 @@ public class BufferingForwardingAppender extends RollingFileAppender
     }
 
 
+    /**
+     * Write the buffered events to the file and, if enabled, record where
+     * they ended up in the incident index.
+     *
+     * @param trigger event which triggered the flush.
+     */
+    private void forwardBuffer(final LoggingEvent trigger) {
+        if (buffer.isEmpty()) {
+            return;
+        }
+        if (index == null) {
+            buffer.stream().forEach(e -> BufferingForwardingAppender.super.append(e));
+            buffer.clear();
+        } else {
+            incidentTrigger = trigger;
+            incidentOffset = position();
+            incidentEvents = 0;
+            try {
+                for (LoggingEvent e : buffer) {
+                    //
+                    //   count before appending, the append itself may roll
+                    //   the file over and the event belongs to the old file.
+                    //
+                    incidentEvents++;
+                    super.append(e);
+                }
+                recordIncident();
+            } finally {
+                incidentTrigger = null;
+                buffer.clear();
+            }
+        }
+
+        makeDurable();
+    }
+
+    /**
+     * Make the flushed burst durable according to the <b>Durability</b>
+     * option. Group commits are left to the committer thread of
+     * {@link FileSync}, since this runs under the monitor of the logger and
+     * waiting here would block every other thread logging to it.
+     */
+    private void makeDurable() {
+        if (durability == Durability.NONE || qw == null) {
+            return;
+        }
+        qw.flush();
+        long start = System.nanoTime();
+        fileSync.register();
+        if (durability == Durability.GROUP_COMMIT) {
+            fileSync.start();
+        } else {
+            try {
+                fileSync.force();
+            } catch (IOException e) {
+                LogLog.error("Could not force " + fileName + " to disk", e);
+            }
+        }
+        fileSync.recordBlocked(System.nanoTime() - start);
+    }
+
+    /**
+     * Tell {@link FileSync} the file has been (re)opened, so that it forces
+     * the new file from now on.
+     */
+    @Override
+    public synchronized void setFile(final String fileName, final boolean append,
+                                     final boolean bufferedIO, final int bufferSize) throws IOException {
+        super.setFile(fileName, append, bufferedIO, bufferSize);
+        fileSync.setFile(new File(fileName));
+    }
+
+    /**
+     * Append the part of the current burst written to the current file to
+     * the incident index.
+     */
+    private void recordIncident() {
+        if (incidentTrigger == null || incidentEvents == 0) {
+            return;
+        }
+        long length = position() - incidentOffset;
+        if (length <= 0) {
+            return;
+        }
+        try {
+            index.append(new Incident(
+                    incidentTrigger.getTimeStamp(),
+                    incidentTrigger.getLevel().toString(),
+                    incidentTrigger.getLoggerName(),
+                    new File(fileName).getName(),
+                    incidentOffset,
+                    length,
+                    incidentEvents));
+        } catch (IOException e) {
+            LogLog.error("Could not write incident index " + index.getFile(), e);
+        }
+    }
+
+    /**
+     * Flush the writer and get the byte size of the current file. The
+     * writer counts characters, not bytes, so the file itself is asked.
+     *
+     * @return size of the current file in bytes.
+     */
+    private long position() {
+        if (qw == null || fileName == null) {
+            return 0;
+        }
+        qw.flush();
+        return new File(fileName).length();
+    }
+
+    /**
+     * Open the incident index after the file has been opened.
+     */
+    @Override
+    public void activateOptions() {
+        super.activateOptions();
+        if (index != null) {
+            index.close();
+            index = null;
+        }
+        if (incidentIndex && fileName != null) {
+            index = IncidentIndex.forLogFile(fileName);
+            if (!fileAppend) {
+                try {
+                    index.prune(new File(fileName).getName());
+                } catch (IOException e) {
+                    LogLog.error("Could not prune incident index " + index.getFile(), e);
+                }
+            }
+        }
+        if (index != null) {
+            index.setDurable(durability != Durability.NONE);
+        }
+        fileSync.setIndex(index);
+
+        fileSync.setWindow(groupCommitWindow);
+        if (durability == Durability.GROUP_COMMIT) {
+            fileSync.start();
+        } else {
+            fileSync.stop();
+        }
+    }
+
+    /**
+     * Roll the file over and keep the incident index consistent with the
+     * renamed files. A burst being flushed is split into one entry per file.
+     */
+    @Override
+    public void rollOver() {
+        //
+        //   the file is closed by the rollover, force it while still open.
+        //
+        if (durability != Durability.NONE && qw != null) {
+            qw.flush();
+            long start = System.nanoTime();
+            try {
+                fileSync.force();
+            } catch (IOException e) {
+                LogLog.error("Could not force " + fileName + " to disk", e);
+            }
+            fileSync.recordBlocked(System.nanoTime() - start);
+        }
+
+        if (index == null || fileName == null) {
+            super.rollOver();
+            return;
+        }
+
+        File file = new File(fileName).getAbsoluteFile();
+        String name = file.getName();
+        position();
+        recordIncident();
+
+        //
+        //   RollingFileAppender gives up silently when a rename fails, after
+        //   some backups may have moved already, so follow the files which
+        //   actually moved rather than the renames it should have done.
+        //
+        Map<String, String> before = IncidentIndex.identify(file.getParentFile(), name, maxBackupIndex);
+        super.rollOver();
+        Map<String, String> after = IncidentIndex.identify(file.getParentFile(), name, maxBackupIndex);
+        try {
+            index.remap(name, before, after);
+        } catch (IOException e) {
+            LogLog.error("Could not roll over incident index " + index.getFile(), e);
+        }
+
+        if (incidentTrigger != null) {
+            incidentOffset = position();
+            incidentEvents = 0;
+        }
+    }
+
     /**
      * Close this <code>AsyncAppender</code> by interrupting the dispatcher
      * thread which will process all pending events before exiting.
@@ -282,6 +523,20 @@ public class BufferingForwardingAppender extends RollingFileAppender
 //            buffer.notifyAll();
         }
 
+        //
+        //   let the committer force the pending group commits before the
+        //   index it forces too is closed.
+        //
+        fileSync.stop();
+
+        if (index != null) {
+            index.close();
+        }
+
+        if (durability != Durability.NONE) {
+            System.out.println("Durability " + durability + " of " + fileName + ": " + fileSync);
+        }
+
 //        try {
 //            dispatcher.join();
 //        } catch (InterruptedException e) {
@@ -410,6 +665,89 @@ public class BufferingForwardingAppender extends RollingFileAppender
         locationInfo = flag;
     }
 
+    /**
+     * The <b>IncidentIndex</b> option takes a boolean value. If true, every
+     * trigger flush is recorded in a sidecar <code>&lt;file&gt;.idx</code>
+     * index (see {@link IncidentIndex}), so a burst can be found without
+     * scanning the log file. Takes effect on {@link #activateOptions()}.
+     *
+     * @param flag true if flushed bursts should be indexed.
+     */
+    public void setIncidentIndex(final boolean flag) {
+        incidentIndex = flag;
+    }
+
+    /**
+     * Gets whether flushed bursts are recorded in an incident index.
+     *
+     * @return the current value of the <b>IncidentIndex</b> option.
+     */
+    public boolean getIncidentIndex() {
+        return incidentIndex;
+    }
+
+    /**
+     * The <b>Durability</b> option takes one of <code>NONE</code>,
+     * <code>FSYNC</code> or <code>GROUP_COMMIT</code>, see {@link Durability}.
+     * By default, it is set to <code>NONE</code> which means flushed bursts
+     * are only handed to the operating system.
+     *
+     * @param value durability, unknown values are ignored.
+     */
+    public void setDurability(final String value) {
+        Durability parsed = Durability.toDurability(value);
+        if (parsed == null) {
+            LogLog.warn("Unknown durability [" + value + "], keeping " + durability + ".");
+            return;
+        }
+        durability = parsed;
+        if (durability != Durability.GROUP_COMMIT) {
+            fileSync.stop();
+        }
+    }
+
+    /**
+     * Gets the durability of flushed bursts.
+     *
+     * @return the current value of the <b>Durability</b> option.
+     */
+    public String getDurability() {
+        return durability.name();
+    }
+
+    /**
+     * Sets the time a group commit waits for flushes of other threads
+     * before forcing the file. Only used with <code>GROUP_COMMIT</code>
+     * durability, where a flush reaches the disk at most this window plus
+     * the force time after the logging call returned.
+     *
+     * @param millis window in milliseconds, zero forces immediately.
+     */
+    public void setGroupCommitWindow(final long millis) {
+        groupCommitWindow = (millis < 0) ? 0 : millis;
+        fileSync.setWindow(groupCommitWindow);
+    }
+
+    /**
+     * Gets the group commit window.
+     *
+     * @return the current value of the <b>GroupCommitWindow</b> option.
+     */
+    public long getGroupCommitWindow() {
+        return groupCommitWindow;
+    }
+
+    /**
+     * Gets the fsync statistics: the time flushing threads were blocked,
+     * the time until flushes were on disk and the number and duration of
+     * the forces, each reported separately.
+     *
+     * @return statistics, never null.
+     */
+    public FileSync getFileSync() {
+        return fileSync;
+    }
+
     /**
      * Sets the number of messages allowed in the event buffer
      * before the calling thread is blocked (if blocking is true)
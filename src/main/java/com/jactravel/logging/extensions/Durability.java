@@ -0,0 +1,45 @@
+package com.jactravel.logging.extensions;
+
+/**
+ * Durability of the bursts flushed by {@link BufferingForwardingAppender}.
+ */
+public enum Durability {
+
+    /**
+     * Flushed bursts are handed to the operating system only, like the
+     * <b>ImmediateFlush</b> option of {@link org.apache.log4j.WriterAppender}.
+     */
+    NONE,
+
+    /**
+     * Every trigger flush is forced to disk before the logging call returns.
+     * Since log4j calls appenders under the monitor of the logger, the
+     * forces of concurrent threads are serialized.
+     */
+    FSYNC,
+
+    /**
+     * Trigger flushes are forced by a committer thread, at most the group
+     * commit window plus the force time after the logging call returned.
+     * Flushes of all threads within the window share a single force of the
+     * file, and the logging call does not wait for it.
+     */
+    GROUP_COMMIT;
+
+    /**
+     * Parse an option value, case insensitive, '-' may be used instead of '_'.
+     *
+     * @param value option value.
+     * @return durability, or null if the value is not recognized.
+     */
+    public static Durability toDurability(final String value) {
+        if (value == null) {
+            return null;
+        }
+        try {
+            return valueOf(value.trim().toUpperCase().replace('-', '_'));
+        } catch (IllegalArgumentException e) {
+            return null;
+        }
+    }
+}
@@ -0,0 +1,435 @@
+package com.jactravel.logging.extensions;
+
+import org.apache.log4j.helpers.LogLog;
+
+import java.io.File;
+import java.io.IOException;
+
+/**
+ * Forces the file of {@link BufferingForwardingAppender}, and its incident
+ * index, to disk and keeps track of the latency this adds.
+ * <p>
+ * Flushes are numbered by {@link #register()}. With {@link Durability#FSYNC}
+ * the flushing thread calls {@link #force()} itself. With
+ * {@link Durability#GROUP_COMMIT} a committer thread started by
+ * {@link #start()} waits for the group commit window and forces all the
+ * flushes registered meanwhile with one force. The flushing thread does not
+ * wait for it: log4j calls appenders while holding the monitor of the
+ * logger, so a thread waiting there would keep every other thread from
+ * logging, and from joining the commit.
+ * </p>
+ * <p>
+ * The file is forced through a {@link ForcingChannel}, never through the
+ * stream it is written with, so an interrupted thread cannot close that
+ * stream.
+ * </p>
+ * <p>
+ * Three latencies are reported separately: the time flushing threads were
+ * blocked, the time from a flush until it was on disk, which includes the
+ * group commit window, and the time spent in the forces themselves.
+ * </p>
+ */
+public final class FileSync {
+
+    /**
+     * Monitor protecting all the fields below, except those guarded by
+     * {@link #forceLock}.
+     */
+    private final Object lock = new Object();
+
+    /**
+     * Serializes forces, so that each registered flush is accounted once.
+     * Also guards {@link #forcing} and {@link #forcingGeneration}.
+     */
+    private final Object forceLock = new Object();
+
+    /**
+     * Current file, null if the output is not a file.
+     */
+    private File file;
+
+    /**
+     * Incremented whenever the file is opened again, e.g. by a rollover
+     * which keeps the file name but creates a new file.
+     */
+    private long generation;
+
+    /**
+     * Descriptor forcing the current file.
+     */
+    private ForcingChannel forcing;
+
+    /**
+     * Generation {@link #forcing} has been opened for.
+     */
+    private long forcingGeneration;
+
+    /**
+     * Incident index forced together with the file, null if none.
+     */
+    private IncidentIndex index;
+
+    /**
+     * Time the committer waits for other flushes, in milliseconds.
+     */
+    private long windowMillis = BufferingForwardingAppender.DEFAULT_GROUP_COMMIT_WINDOW;
+
+    /**
+     * Number of the last registered flush.
+     */
+    private long written;
+
+    /**
+     * Number of the last flush handled by a force.
+     */
+    private long committed;
+
+    /**
+     * Sum of the registration times of the flushes not handled yet.
+     */
+    private long pendingSince;
+
+    /**
+     * Number of forces.
+     */
+    private long syncCount;
+
+    /**
+     * Number of forces which failed.
+     */
+    private long failedSyncCount;
+
+    /**
+     * Total time spent in forces, in nanoseconds.
+     */
+    private long syncNanos;
+
+    /**
+     * Longest force, in nanoseconds.
+     */
+    private long maxSyncNanos;
+
+    /**
+     * Total time from registration until the flushes were handled by a force,
+     * in nanoseconds.
+     */
+    private long lagNanos;
+
+    /**
+     * Total time flushing threads were blocked for durability, in nanoseconds.
+     */
+    private long blockedNanos;
+
+    /**
+     * Committer thread, null if not started.
+     */
+    private Thread committer;
+
+    /**
+     * Should the committer thread terminate.
+     */
+    private boolean stopping;
+
+    /**
+     * Set the current file, called whenever it has been (re)opened.
+     *
+     * @param file file, null if the output is not a file.
+     */
+    public void setFile(final File file) {
+        synchronized (lock) {
+            this.file = file;
+            generation++;
+        }
+    }
+
+    /**
+     * Set the incident index forced together with the file.
+     *
+     * @param index index, null if none.
+     */
+    public void setIndex(final IncidentIndex index) {
+        synchronized (lock) {
+            this.index = index;
+        }
+    }
+
+    /**
+     * Set the group commit window, used from the next commit on.
+     *
+     * @param millis window in milliseconds.
+     */
+    public void setWindow(final long millis) {
+        synchronized (lock) {
+            windowMillis = millis;
+        }
+    }
+
+    /**
+     * Register a flush which has been handed to the operating system, and
+     * wake up the committer thread if started.
+     *
+     * @return number of the flush.
+     */
+    public long register() {
+        synchronized (lock) {
+            pendingSince += System.nanoTime();
+            lock.notifyAll();
+            return ++written;
+        }
+    }
+
+    /**
+     * Force the current file and the incident index to disk, covering all
+     * registered flushes.
+     *
+     * @return time spent in the force, in nanoseconds.
+     * @throws IOException if the force fails.
+     */
+    public long force() throws IOException {
+        return force(false);
+    }
+
+    /**
+     * Force the current file and the incident index to disk.
+     *
+     * @param pendingOnly skip the force if no registered flush is pending.
+     */
+    private long force(final boolean pendingOnly) throws IOException {
+        synchronized (forceLock) {
+            File target;
+            long targetGeneration;
+            IncidentIndex targetIndex;
+            long covered;
+            long coveredSince;
+            long previous;
+            synchronized (lock) {
+                if (pendingOnly && committed >= written) {
+                    return 0;
+                }
+                target = file;
+                targetGeneration = generation;
+                targetIndex = index;
+                covered = written;
+                coveredSince = pendingSince;
+                previous = committed;
+            }
+
+            if (forcing != null && (target == null || forcingGeneration != targetGeneration)) {
+                forcing.close();
+                forcing = null;
+            }
+            if (forcing == null && target != null) {
+                forcing = new ForcingChannel(target);
+                forcingGeneration = targetGeneration;
+            }
+
+            long start = System.nanoTime();
+            try {
+                if (forcing != null) {
+                    forcing.force();
+                }
+                if (targetIndex != null) {
+                    targetIndex.force();
+                }
+            } catch (IOException e) {
+                synchronized (lock) {
+                    failedSyncCount++;
+                    pendingSince -= coveredSince;
+                    committed = covered;
+                    lock.notifyAll();
+                }
+                throw e;
+            }
+            long end = System.nanoTime();
+            long elapsed = end - start;
+
+            synchronized (lock) {
+                if (forcing != null || targetIndex != null) {
+                    syncCount++;
+                    syncNanos += elapsed;
+                    maxSyncNanos = Math.max(maxSyncNanos, elapsed);
+                }
+                lagNanos += (covered - previous) * end - coveredSince;
+                pendingSince -= coveredSince;
+                committed = covered;
+                lock.notifyAll();
+            }
+            return elapsed;
+        }
+    }
+
+    /**
+     * Account the time a flushing thread was blocked for durability.
+     *
+     * @param nanos blocked time in nanoseconds.
+     */
+    public void recordBlocked(final long nanos) {
+        synchronized (lock) {
+            blockedNanos += nanos;
+        }
+    }
+
+    /**
+     * Start the committer thread for group commits, if not started yet.
+     */
+    public void start() {
+        synchronized (lock) {
+            if (committer != null) {
+                return;
+            }
+            stopping = false;
+            committer = new Thread(new Committer());
+            committer.setDaemon(true);
+            committer.setName("FileSync-" + committer.getName());
+            committer.start();
+        }
+    }
+
+    /**
+     * Stop the committer thread, after it has forced the pending flushes,
+     * and release the descriptor used for forcing.
+     */
+    public void stop() {
+        Thread thread;
+        synchronized (lock) {
+            thread = committer;
+            committer = null;
+            stopping = true;
+            lock.notifyAll();
+        }
+        if (thread != null) {
+            boolean interrupted = false;
+            while (thread.isAlive()) {
+                try {
+                    thread.join();
+                } catch (InterruptedException e) {
+                    interrupted = true;
+                }
+            }
+            if (interrupted) {
+                Thread.currentThread().interrupt();
+            }
+        }
+        synchronized (forceLock) {
+            if (forcing != null) {
+                forcing.close();
+                forcing = null;
+            }
+        }
+    }
+
+    public long getFlushCount() {
+        synchronized (lock) {
+            return written;
+        }
+    }
+
+    public long getCommittedCount() {
+        synchronized (lock) {
+            return committed;
+        }
+    }
+
+    public long getSyncCount() {
+        synchronized (lock) {
+            return syncCount;
+        }
+    }
+
+    public long getFailedSyncCount() {
+        synchronized (lock) {
+            return failedSyncCount;
+        }
+    }
+
+    public long getSyncNanos() {
+        synchronized (lock) {
+            return syncNanos;
+        }
+    }
+
+    public long getMaxSyncNanos() {
+        synchronized (lock) {
+            return maxSyncNanos;
+        }
+    }
+
+    public long getLagNanos() {
+        synchronized (lock) {
+            return lagNanos;
+        }
+    }
+
+    public long getBlockedNanos() {
+        synchronized (lock) {
+            return blockedNanos;
+        }
+    }
+
+    @Override
+    public String toString() {
+        synchronized (lock) {
+            return "flushes=" + written
+                    + " blockedAvgMicros=" + average(blockedNanos, written)
+                    + " durableLagAvgMicros=" + average(lagNanos, committed)
+                    + " syncs=" + syncCount
+                    + " syncAvgMicros=" + average(syncNanos, syncCount)
+                    + " syncMaxMicros=" + maxSyncNanos / 1000
+                    + " failedSyncs=" + failedSyncCount;
+        }
+    }
+
+    private static long average(final long nanos, final long count) {
+        return count == 0 ? 0 : nanos / count / 1000;
+    }
+
+    /**
+     * Group commit loop.
+     */
+    private final class Committer implements Runnable {
+
+        /**
+         * {@inheritDoc}
+         */
+        public void run() {
+            while (true) {
+                synchronized (lock) {
+                    while (committed >= written && !stopping) {
+                        await(0);
+                    }
+                    if (committed >= written) {
+                        return;
+                    }
+
+                    //
+                    //   let other flushes join, unless stopping.
+                    //
+                    long deadline = System.currentTimeMillis() + windowMillis;
+                    long remaining = windowMillis;
+                    while (remaining > 0 && !stopping) {
+                        await(remaining);
+                        remaining = deadline - System.currentTimeMillis();
+                    }
+                }
+
+                try {
+                    force(true);
+                } catch (IOException e) {
+                    LogLog.error("Could not force log file to disk", e);
+                }
+            }
+        }
+
+        /**
+         * Wait on the monitor, interrupts are ignored since the committer
+         * is stopped through {@link FileSync#stop()}.
+         */
+        private void await(final long millis) {
+            try {
+                lock.wait(millis);
+            } catch (InterruptedException e) {
+                // checked by the loop conditions
+            }
+        }
+    }
+}
@@ -0,0 +1,93 @@
+package com.jactravel.logging.extensions;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.channels.ClosedByInterruptException;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * Descriptor of its own on a file or directory, used only to force it to
+ * disk.
+ * <p>
+ * Channels are closed when the thread using them is interrupted. Forcing
+ * through the channel of the stream a file is written with would then close
+ * the stream too, and every later write would be lost. An interrupt can only
+ * close this descriptor, which is reopened on the same path.
+ * </p>
+ * <p>
+ * Not thread-safe, callers serialize the forces.
+ * </p>
+ */
+final class ForcingChannel {
+
+    /**
+     * File or directory to force.
+     */
+    private final File file;
+
+    /**
+     * Descriptor, opened lazily.
+     */
+    private FileChannel channel;
+
+    /**
+     * Create new instance, the file is opened by the first force.
+     *
+     * @param file file or directory, may not be null.
+     */
+    ForcingChannel(final File file) {
+        this.file = file;
+    }
+
+    File getFile() {
+        return file;
+    }
+
+    /**
+     * Force the content of the file, or the entries of the directory, to disk.
+     * An interrupt set before the call is kept for after it, an interrupt
+     * during the force reopens the descriptor and forces again.
+     *
+     * @throws IOException if the force fails.
+     */
+    void force() throws IOException {
+        boolean interrupted = Thread.interrupted();
+        try {
+            try {
+                open().force(file.isDirectory());
+            } catch (ClosedByInterruptException e) {
+                interrupted |= Thread.interrupted();
+                channel = null;
+                open().force(file.isDirectory());
+            }
+        } finally {
+            if (interrupted) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+
+    /**
+     * Close the descriptor.
+     */
+    void close() {
+        if (channel != null) {
+            try {
+                channel.close();
+            } catch (IOException e) {
+                // nothing was written through it
+            }
+            channel = null;
+        }
+    }
+
+    private FileChannel open() throws IOException {
+        if (channel == null || !channel.isOpen()) {
+            channel = file.isDirectory()
+                    ? FileChannel.open(file.toPath(), StandardOpenOption.READ)
+                    : FileChannel.open(file.toPath(), StandardOpenOption.WRITE);
+        }
+        return channel;
+    }
+}
@@ -0,0 +1,169 @@
+package com.jactravel.logging.extensions;
+
+/**
+ * One entry of an {@link IncidentIndex}: the location of a burst of events
+ * flushed by {@link BufferingForwardingAppender} on a trigger event.
+ * <p>
+ * The entry is stored as a single tab separated line, so the index stays
+ * readable with ordinary text tools.
+ * </p>
+ */
+public final class Incident {
+
+    /**
+     * Field separator of the serialized form.
+     */
+    private static final char SEPARATOR = '\t';
+
+    /**
+     * Number of fields of the serialized form.
+     */
+    private static final int FIELDS = 7;
+
+    private final long timestamp;
+
+    private final String level;
+
+    private final String loggerName;
+
+    private final String fileName;
+
+    private final long offset;
+
+    private final long length;
+
+    private final int eventCount;
+
+    /**
+     * Create new instance.
+     *
+     * @param timestamp  timestamp of the trigger event in milliseconds.
+     * @param level      level of the trigger event.
+     * @param loggerName logger of the trigger event.
+     * @param fileName   name of the log file, relative to the index directory.
+     * @param offset     byte offset of the burst in the log file.
+     * @param length     byte length of the burst.
+     * @param eventCount number of events in the burst.
+     */
+    public Incident(final long timestamp, final String level, final String loggerName,
+                    final String fileName, final long offset, final long length, final int eventCount) {
+        this.timestamp = timestamp;
+        this.level = level;
+        this.loggerName = loggerName;
+        this.fileName = fileName;
+        this.offset = offset;
+        this.length = length;
+        this.eventCount = eventCount;
+    }
+
+    public long getTimestamp() {
+        return timestamp;
+    }
+
+    public String getLevel() {
+        return level;
+    }
+
+    public String getLoggerName() {
+        return loggerName;
+    }
+
+    public String getFileName() {
+        return fileName;
+    }
+
+    public long getOffset() {
+        return offset;
+    }
+
+    public long getLength() {
+        return length;
+    }
+
+    public int getEventCount() {
+        return eventCount;
+    }
+
+    /**
+     * Create a copy of this entry pointing to another log file, used when
+     * the log file is renamed by a rollover.
+     *
+     * @param newFileName new file name.
+     * @return new entry.
+     */
+    public Incident withFileName(final String newFileName) {
+        return new Incident(timestamp, level, loggerName, newFileName, offset, length, eventCount);
+    }
+
+    /**
+     * Determines if the trigger event of this entry was logged by the given
+     * logger or one of its descendants.
+     *
+     * @param name logger name, null matches every logger.
+     * @return true if matching.
+     */
+    public boolean isLoggedBy(final String name) {
+        if (name == null || name.equals(loggerName)) {
+            return true;
+        }
+        return loggerName.startsWith(name) && loggerName.charAt(name.length()) == '.';
+    }
+
+    /**
+     * Serialize this entry to a single index line, without line terminator.
+     *
+     * @return index line.
+     */
+    public String toLine() {
+        return new StringBuilder()
+                .append(timestamp).append(SEPARATOR)
+                .append(clean(level)).append(SEPARATOR)
+                .append(clean(loggerName)).append(SEPARATOR)
+                .append(clean(fileName)).append(SEPARATOR)
+                .append(offset).append(SEPARATOR)
+                .append(length).append(SEPARATOR)
+                .append(eventCount)
+                .toString();
+    }
+
+    /**
+     * Parse an index line.
+     *
+     * @param line index line, may not be null.
+     * @return parsed entry.
+     * @throws IllegalArgumentException if the line is malformed.
+     */
+    public static Incident parse(final String line) {
+        String[] fields = line.split(String.valueOf(SEPARATOR), -1);
+        if (fields.length != FIELDS) {
+            throw new IllegalArgumentException("Malformed incident index line: " + line);
+        }
+        try {
+            return new Incident(
+                    Long.parseLong(fields[0]),
+                    fields[1],
+                    fields[2],
+                    fields[3],
+                    Long.parseLong(fields[4]),
+                    Long.parseLong(fields[5]),
+                    Integer.parseInt(fields[6]));
+        } catch (NumberFormatException e) {
+            throw new IllegalArgumentException("Malformed incident index line: " + line, e);
+        }
+    }
+
+    /**
+     * Replace characters which would break the line format.
+     */
+    private static String clean(final String value) {
+        if (value == null) {
+            return "";
+        }
+        return value.replace(SEPARATOR, ' ').replace('\n', ' ').replace('\r', ' ');
+    }
+
+    @Override
+    public String toString() {
+        return toLine();
+    }
+}
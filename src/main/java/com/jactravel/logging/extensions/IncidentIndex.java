@@ -0,0 +1,527 @@
+package com.jactravel.logging.extensions;
+
+import org.apache.log4j.helpers.LogLog;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.RandomAccessFile;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.time.LocalDateTime;
+import java.time.ZoneId;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Sidecar index of the bursts flushed by {@link BufferingForwardingAppender}.
+ * <p>
+ * Every trigger flush appends one {@link Incident} line to the index, so an
+ * incident can be read by seeking straight to its byte range instead of
+ * scanning the whole (possibly rolled) log file. The index lives next to the
+ * log file as <code>&lt;file&gt;.idx</code> and refers to the log files by
+ * their name only, so a log directory can be moved together with its index.
+ * </p>
+ * <p>
+ * With {@link Durability#NONE} the index is best-effort: after a crash it may
+ * miss the last bursts, or refer to bytes which never reached the log file.
+ * Other durabilities force the index together with the log file.
+ * </p>
+ * <p>
+ * The index can be queried from the command line:
+ * <pre>
+ * java com.jactravel.logging.extensions.IncidentIndex mine.log.idx
+ *      [--from time] [--to time] [--logger name] [--list]
+ * </pre>
+ * where time is either epoch milliseconds or a local ISO date-time such as
+ * <code>2017-06-01T12:00:00</code>.
+ * </p>
+ */
+public class IncidentIndex {
+
+    /**
+     * Suffix appended to the log file name to get the index file name.
+     */
+    public static final String SUFFIX = ".idx";
+
+    /**
+     * Index file.
+     */
+    private final File file;
+
+    /**
+     * Writer appending to the index, opened lazily.
+     */
+    private Writer writer;
+
+    /**
+     * Has the index been written since the last {@link #force()}.
+     */
+    private boolean dirty;
+
+    /**
+     * Has the index file been replaced since {@link #forcing} was opened.
+     */
+    private boolean stale;
+
+    /**
+     * Should rewrites of the index be forced to disk.
+     */
+    private boolean durable;
+
+    /**
+     * Serializes forces, so that appends do not wait for them. Also guards
+     * {@link #forcing}.
+     */
+    private final Object forceLock = new Object();
+
+    /**
+     * Descriptor forcing the index file.
+     */
+    private ForcingChannel forcing;
+
+    /**
+     * Create new instance.
+     *
+     * @param file index file, may not be null.
+     */
+    public IncidentIndex(final File file) {
+        this.file = file;
+    }
+
+    /**
+     * Create the index belonging to a log file.
+     *
+     * @param logFileName log file name, may not be null.
+     * @return index.
+     */
+    public static IncidentIndex forLogFile(final String logFileName) {
+        return new IncidentIndex(new File(logFileName + SUFFIX));
+    }
+
+    public File getFile() {
+        return file;
+    }
+
+    /**
+     * Sets whether rewrites of the index, done on rollover, are forced to
+     * disk together with the directory entry of the replaced file. Set when
+     * the log file uses a durability other than {@link Durability#NONE}.
+     *
+     * @param flag true if rewrites should be durable.
+     */
+    public synchronized void setDurable(final boolean flag) {
+        durable = flag;
+    }
+
+    /**
+     * Append an entry and flush it to the index file.
+     *
+     * @param incident entry to append.
+     * @throws IOException if the index cannot be written.
+     */
+    public synchronized void append(final Incident incident) throws IOException {
+        if (writer == null) {
+            writer = new BufferedWriter(new OutputStreamWriter(
+                    new FileOutputStream(file, true), StandardCharsets.UTF_8));
+        }
+        writer.write(incident.toLine());
+        writer.write('\n');
+        writer.flush();
+        dirty = true;
+    }
+
+    /**
+     * Force the index to disk if written since the last call. Called by
+     * {@link FileSync} after forcing the log file, so that with a durability
+     * other than {@link Durability#NONE} the entry of a flushed burst reaches
+     * the disk together with the burst.
+     * <p>
+     * The force runs outside the monitor of the index, through a descriptor
+     * of its own, so appending threads neither wait for it nor lose their
+     * writer when the forcing thread is interrupted.
+     * </p>
+     *
+     * @throws IOException if the force fails.
+     */
+    public void force() throws IOException {
+        synchronized (forceLock) {
+            synchronized (this) {
+                if (!dirty) {
+                    return;
+                }
+                if (writer != null) {
+                    writer.flush();
+                }
+                dirty = false;
+                if (stale && forcing != null) {
+                    forcing.close();
+                    forcing = null;
+                }
+                stale = false;
+            }
+            if (forcing == null) {
+                forcing = new ForcingChannel(file);
+            }
+            try {
+                forcing.force();
+            } catch (IOException e) {
+                synchronized (this) {
+                    dirty = true;
+                }
+                throw e;
+            }
+        }
+    }
+
+    /**
+     * Identify the active log file and its backups, so that a rollover can
+     * be followed by comparing the identities before and after it.
+     * <p>
+     * A file is identified by its file key (the inode on Unix) together with
+     * its size and modification time, so a file truncated in place does not
+     * keep its identity. Missing files are left out.
+     * </p>
+     *
+     * @param directory      directory of the log files.
+     * @param baseName       name of the active log file.
+     * @param maxBackupIndex number of backup files kept.
+     * @return identities keyed by file name.
+     */
+    public static Map<String, String> identify(final File directory, final String baseName,
+                                               final int maxBackupIndex) {
+        Map<String, String> identities = new HashMap<String, String>();
+        for (int i = 0; i <= maxBackupIndex; i++) {
+            String name = (i == 0) ? baseName : baseName + "." + i;
+            File log = new File(directory, name);
+            try {
+                BasicFileAttributes attributes = Files.readAttributes(log.toPath(), BasicFileAttributes.class);
+                identities.put(name, attributes.fileKey() + ":" + attributes.size()
+                        + ":" + attributes.lastModifiedTime().toMillis());
+            } catch (IOException e) {
+                // missing file, nothing to identify
+            }
+        }
+        return identities;
+    }
+
+    /**
+     * Follow a rollover of <code>baseName</code>: every entry of the active
+     * log file or a backup is moved to the name its file has after the
+     * rollover, and dropped if the file has been deleted or truncated.
+     * <p>
+     * Comparing identities instead of replaying the renames of
+     * {@link org.apache.log4j.RollingFileAppender#rollOver()} keeps the index
+     * right when the rollover fails halfway and only some backups moved.
+     * </p>
+     *
+     * @param baseName name of the active log file.
+     * @param before   identities before the rollover, see {@link #identify(File, String, int)}.
+     * @param after    identities after the rollover.
+     * @throws IOException if the index cannot be rewritten.
+     */
+    public synchronized void remap(final String baseName, final Map<String, String> before,
+                                   final Map<String, String> after) throws IOException {
+        Map<String, String> moved = new HashMap<String, String>();
+        for (Map.Entry<String, String> file : before.entrySet()) {
+            for (Map.Entry<String, String> candidate : after.entrySet()) {
+                if (file.getValue().equals(candidate.getValue())) {
+                    moved.put(file.getKey(), candidate.getKey());
+                }
+            }
+        }
+
+        List<Incident> kept = new ArrayList<Incident>();
+        boolean changed = false;
+        for (Incident incident : read()) {
+            String name = incident.getFileName();
+            if (backupIndex(baseName, name) < 0) {
+                kept.add(incident);
+            } else if (moved.containsKey(name)) {
+                kept.add(incident.withFileName(moved.get(name)));
+                changed |= !name.equals(moved.get(name));
+            } else {
+                changed = true;
+            }
+        }
+        if (changed) {
+            rewrite(kept);
+        }
+    }
+
+    /**
+     * Drop all entries of a log file, used when the file is truncated.
+     *
+     * @param name log file name.
+     * @throws IOException if the index cannot be rewritten.
+     */
+    public synchronized void prune(final String name) throws IOException {
+        List<Incident> kept = new ArrayList<Incident>();
+        boolean changed = false;
+        for (Incident incident : read()) {
+            if (name.equals(incident.getFileName())) {
+                changed = true;
+            } else {
+                kept.add(incident);
+            }
+        }
+        if (changed) {
+            rewrite(kept);
+        }
+    }
+
+    /**
+     * Read all entries, malformed lines (e.g. a line torn by a crash) are skipped.
+     *
+     * @return entries in flush order.
+     * @throws IOException if the index cannot be read.
+     */
+    public synchronized List<Incident> read() throws IOException {
+        List<Incident> incidents = new ArrayList<Incident>();
+        if (writer != null) {
+            writer.flush();
+        }
+        BufferedReader reader;
+        try {
+            reader = new BufferedReader(new InputStreamReader(
+                    new FileInputStream(file), StandardCharsets.UTF_8));
+        } catch (FileNotFoundException e) {
+            return incidents;
+        }
+        try {
+            String line;
+            while ((line = reader.readLine()) != null) {
+                if (line.isEmpty()) {
+                    continue;
+                }
+                try {
+                    incidents.add(Incident.parse(line));
+                } catch (IllegalArgumentException e) {
+                    LogLog.warn(e.getMessage());
+                }
+            }
+        } finally {
+            reader.close();
+        }
+        return incidents;
+    }
+
+    /**
+     * Find entries by time range and logger.
+     *
+     * @param from       lower bound of the trigger timestamp, inclusive.
+     * @param to         upper bound of the trigger timestamp, inclusive.
+     * @param loggerName logger name, matches descendant loggers too; null matches all.
+     * @return matching entries in flush order.
+     * @throws IOException if the index cannot be read.
+     */
+    public List<Incident> find(final long from, final long to, final String loggerName) throws IOException {
+        List<Incident> result = new ArrayList<Incident>();
+        for (Incident incident : read()) {
+            if (incident.getTimestamp() >= from && incident.getTimestamp() <= to
+                    && incident.isLoggedBy(loggerName)) {
+                result.add(incident);
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Get the log file an entry refers to.
+     *
+     * @param incident entry.
+     * @return log file.
+     */
+    public File resolve(final Incident incident) {
+        return new File(file.getAbsoluteFile().getParentFile(), incident.getFileName());
+    }
+
+    /**
+     * Copy the bytes of an incident to a stream, seeking directly to it.
+     *
+     * @param incident entry.
+     * @param out      target stream.
+     * @throws IOException if the log file cannot be read or is shorter than expected.
+     */
+    public void copyTo(final Incident incident, final OutputStream out) throws IOException {
+        RandomAccessFile log = new RandomAccessFile(resolve(incident), "r");
+        try {
+            log.seek(incident.getOffset());
+            byte[] chunk = new byte[8192];
+            long remaining = incident.getLength();
+            while (remaining > 0) {
+                int read = log.read(chunk, 0, (int) Math.min(chunk.length, remaining));
+                if (read < 0) {
+                    throw new IOException("Log file " + incident.getFileName()
+                            + " ends before incident at offset " + incident.getOffset());
+                }
+                out.write(chunk, 0, read);
+                remaining -= read;
+            }
+        } finally {
+            log.close();
+        }
+    }
+
+    /**
+     * Close the index writer and the descriptor used for forcing.
+     */
+    public void close() {
+        synchronized (this) {
+            closeWriter();
+        }
+        synchronized (forceLock) {
+            if (forcing != null) {
+                forcing.close();
+                forcing = null;
+            }
+        }
+    }
+
+    /**
+     * Close the index writer, the caller holds the monitor of the index.
+     */
+    private void closeWriter() {
+        if (writer != null) {
+            try {
+                writer.close();
+            } catch (IOException e) {
+                LogLog.error("Could not close incident index " + file, e);
+            }
+            writer = null;
+        }
+    }
+
+    /**
+     * Get the backup index of a file name relative to the active log file.
+     *
+     * @return 0 for the active file, i for <code>baseName.i</code>, -1 for unrelated files.
+     */
+    private static int backupIndex(final String baseName, final String name) {
+        if (baseName.equals(name)) {
+            return 0;
+        }
+        if (name.startsWith(baseName + ".")) {
+            try {
+                int backup = Integer.parseInt(name.substring(baseName.length() + 1));
+                return backup > 0 ? backup : -1;
+            } catch (NumberFormatException e) {
+                return -1;
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * Replace the index content, through a temporary file so readers never
+     * see a partially written index.
+     */
+    private void rewrite(final List<Incident> incidents) throws IOException {
+        closeWriter();
+        File tmp = new File(file.getPath() + ".tmp");
+        Writer out = new BufferedWriter(new OutputStreamWriter(
+                new FileOutputStream(tmp, false), StandardCharsets.UTF_8));
+        try {
+            for (Incident incident : incidents) {
+                out.write(incident.toLine());
+                out.write('\n');
+            }
+        } finally {
+            out.close();
+        }
+
+        //
+        //   without forcing the content before the rename, and the rename
+        //   itself, a crash can leave an empty or old index behind.
+        //
+        if (durable) {
+            forceOnce(tmp);
+        }
+        Files.move(tmp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING);
+        if (durable) {
+            try {
+                forceOnce(file.getAbsoluteFile().getParentFile());
+            } catch (IOException e) {
+                // some platforms cannot open directories
+                LogLog.debug("Could not force directory of incident index " + file + ": " + e);
+            }
+        }
+        dirty = !durable;
+        stale = true;
+    }
+
+    private static void forceOnce(final File target) throws IOException {
+        ForcingChannel channel = new ForcingChannel(target);
+        try {
+            channel.force();
+        } finally {
+            channel.close();
+        }
+    }
+
+    private static long parseTime(final String value) {
+        try {
+            return Long.parseLong(value);
+        } catch (NumberFormatException e) {
+            return LocalDateTime.parse(value).atZone(ZoneId.systemDefault()).toInstant().toEpochMilli();
+        }
+    }
+
+    /**
+     * Print the incidents matching the given filters.
+     *
+     * @param args index file followed by optional filters.
+     * @throws IOException if the index or a log file cannot be read.
+     */
+    public static void main(final String[] args) throws IOException {
+        if (args.length < 1) {
+            System.err.println("Usage: IncidentIndex <index-file> [--from time] [--to time] [--logger name] [--list]");
+            System.exit(2);
+        }
+        long from = Long.MIN_VALUE;
+        long to = Long.MAX_VALUE;
+        String loggerName = null;
+        boolean list = false;
+        for (int i = 1; i < args.length; i++) {
+            if ("--list".equals(args[i])) {
+                list = true;
+            } else if (i + 1 < args.length && "--from".equals(args[i])) {
+                from = parseTime(args[++i]);
+            } else if (i + 1 < args.length && "--to".equals(args[i])) {
+                to = parseTime(args[++i]);
+            } else if (i + 1 < args.length && "--logger".equals(args[i])) {
+                loggerName = args[++i];
+            } else {
+                System.err.println("Unknown argument: " + args[i]);
+                System.exit(2);
+            }
+        }
+
+        IncidentIndex index = new IncidentIndex(new File(args[0]));
+        for (Incident incident : index.find(from, to, loggerName)) {
+            if (list) {
+                System.out.println(incident.toLine());
+            } else {
+                System.out.println("# " + incident.toLine());
+                try {
+                    index.copyTo(incident, System.out);
+                } catch (IOException e) {
+                    System.out.println("# " + e.getMessage());
+                }
+            }
+        }
+        System.out.flush();
+    }
+}
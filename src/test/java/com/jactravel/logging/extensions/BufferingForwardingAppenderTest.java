@@ -0,0 +1,287 @@
+package com.jactravel.logging.extensions;
+
+import org.apache.log4j.Level;
+import org.apache.log4j.Logger;
+import org.apache.log4j.PatternLayout;
+import org.apache.log4j.spi.LoggingEvent;
+import org.junit.After;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.PrintStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class BufferingForwardingAppenderTest {
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private final List<Logger> loggers = new ArrayList<Logger>();
+
+    @After
+    public void detach() {
+        for (Logger logger : loggers) {
+            logger.removeAllAppenders();
+        }
+    }
+
+    @Test
+    public void groupCommitSharesForcesAcrossLoggingThreads() throws Exception {
+        final BufferingForwardingAppender appender = appender("GROUP_COMMIT");
+        final Logger logger = logger("durability.groupCommit", appender);
+
+        final int threads = 8;
+        final int flushes = 25;
+        final CountDownLatch start = new CountDownLatch(1);
+        List<Thread> loggingThreads = new ArrayList<Thread>();
+        for (int i = 0; i < threads; i++) {
+            Thread thread = new Thread(() -> {
+                try {
+                    start.await();
+                } catch (InterruptedException e) {
+                    throw new IllegalStateException(e);
+                }
+                for (int j = 0; j < flushes; j++) {
+                    logger.error("failed " + j);
+                }
+            });
+            thread.start();
+            loggingThreads.add(thread);
+        }
+        start.countDown();
+        for (Thread thread : loggingThreads) {
+            thread.join();
+        }
+        appender.close();
+
+        FileSync fileSync = appender.getFileSync();
+        assertEquals(threads * flushes, fileSync.getFlushCount());
+        assertEquals(threads * flushes, fileSync.getCommittedCount());
+        assertTrue(fileSync.getSyncCount() >= 1);
+        assertTrue(fileSync.getSyncCount() < fileSync.getFlushCount());
+    }
+
+    @Test
+    public void fsyncForcesOncePerTriggerFlush() throws Exception {
+        BufferingForwardingAppender appender = appender("FSYNC");
+        Logger logger = logger("durability.fsync", appender);
+
+        for (int i = 0; i < 10; i++) {
+            logger.debug("buffered " + i);
+            logger.info("buffered " + i);
+        }
+        assertEquals(0, appender.getFileSync().getFlushCount());
+        assertEquals(0, appender.getFileSync().getSyncCount());
+
+        logger.error("failed");
+        assertEquals(1, appender.getFileSync().getSyncCount());
+
+        logger.warn("buffered");
+        logger.error("failed again");
+        logger.error("failed once more");
+        appender.close();
+
+        assertEquals(3, appender.getFileSync().getFlushCount());
+        assertEquals(3, appender.getFileSync().getSyncCount());
+    }
+
+    @Test
+    public void fsyncRollOverDoesNotFailForce() throws Exception {
+        BufferingForwardingAppender appender = appender("FSYNC");
+        appender.setMaximumFileSize(1);
+        appender.setMaxBackupIndex(3);
+        Logger logger = logger("durability.rollOver", appender);
+
+        PrintStream err = System.err;
+        ByteArrayOutputStream errors = new ByteArrayOutputStream();
+        System.setErr(new PrintStream(errors, true));
+        try {
+            for (int i = 0; i < 5; i++) {
+                logger.info("buffered " + i);
+                logger.error("failed " + i);
+            }
+            appender.close();
+        } finally {
+            System.setErr(err);
+        }
+
+        assertFalse(errors.toString(), errors.toString().contains("ClosedChannelException"));
+        assertEquals(0, appender.getFileSync().getFailedSyncCount());
+        assertEquals(5, appender.getFileSync().getCommittedCount());
+    }
+
+    @Test
+    public void rollOverForceCountsAsBlocked() throws Exception {
+        BufferingForwardingAppender appender = appender("GROUP_COMMIT");
+        appender.setGroupCommitWindow(10000);
+        appender.setMaximumFileSize(1);
+        appender.setMaxBackupIndex(3);
+        Logger logger = logger("durability.rollOverBlocked", appender);
+
+        logger.info("buffered");
+        logger.error("failed");
+
+        //
+        //   the committer is still waiting, every force so far has been
+        //   done by a rollover on the logging thread.
+        //
+        FileSync fileSync = appender.getFileSync();
+        assertTrue(fileSync.getSyncCount() >= 1);
+        assertTrue(fileSync.getBlockedNanos() >= fileSync.getSyncNanos());
+        appender.close();
+    }
+
+    @Test
+    public void groupCommitWindowChangeTakesEffect() throws Exception {
+        BufferingForwardingAppender appender = appender("GROUP_COMMIT");
+        appender.setGroupCommitWindow(10000);
+        Logger logger = logger("durability.window", appender);
+
+        appender.setGroupCommitWindow(0);
+        logger.error("failed");
+
+        long deadline = System.currentTimeMillis() + 2000;
+        while (appender.getFileSync().getCommittedCount() < 1 && System.currentTimeMillis() < deadline) {
+            Thread.sleep(5);
+        }
+        assertEquals(1, appender.getFileSync().getCommittedCount());
+        appender.close();
+    }
+
+    @Test
+    public void leavingGroupCommitStopsCommitter() throws Exception {
+        BufferingForwardingAppender appender = appender("GROUP_COMMIT");
+        appender.setGroupCommitWindow(10000);
+        Logger logger = logger("durability.leave", appender);
+
+        logger.error("failed");
+        assertEquals(0, appender.getFileSync().getCommittedCount());
+
+        //
+        //   the committer forces the pending flush when stopped, instead of
+        //   waiting for the end of the window.
+        //
+        appender.setDurability("FSYNC");
+        assertEquals(1, appender.getFileSync().getCommittedCount());
+
+        logger.error("failed again");
+        assertEquals(2, appender.getFileSync().getCommittedCount());
+        appender.close();
+    }
+
+    @Test
+    public void incidentIndexFollowsRollOver() throws Exception {
+        File log = new File(folder.getRoot(), "app.log");
+        BufferingForwardingAppender appender = appender("NONE", true);
+        appender.setMaximumFileSize(1);
+        appender.setMaxBackupIndex(5);
+
+        Logger logger = Logger.getLogger("com.example.Service");
+        appender.doAppend(new LoggingEvent(Logger.class.getName(), logger, Level.INFO, "first", null));
+        appender.doAppend(new LoggingEvent(Logger.class.getName(), logger, Level.ERROR, "failed", null));
+        appender.close();
+
+        //
+        //   every event rolls the file over, so the burst is split in two
+        //   entries which have followed the renames.
+        //
+        IncidentIndex index = IncidentIndex.forLogFile(log.getPath());
+        List<Incident> incidents = index.find(Long.MIN_VALUE, Long.MAX_VALUE, "com.example");
+        assertEquals(2, incidents.size());
+        assertEquals("app.log.2", incidents.get(0).getFileName());
+        assertEquals("app.log.1", incidents.get(1).getFileName());
+
+        for (Incident incident : incidents) {
+            assertEquals(1, incident.getEventCount());
+            assertEquals("ERROR", incident.getLevel());
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+            index.copyTo(incident, bytes);
+            assertArrayEquals(Files.readAllBytes(index.resolve(incident).toPath()), bytes.toByteArray());
+        }
+    }
+
+    @Test
+    public void incidentIndexSeeksToBurstInsideFile() throws Exception {
+        BufferingForwardingAppender appender = appender("NONE", true);
+        Logger logger = logger("com.example.Payment", appender);
+
+        logger.info("premi\u00e8re \u00e9tape");
+        logger.error("\u00e9chec du paiement");
+        logger.info("second try");
+        logger.error("\u00fcn\u00efc\u00f6d\u00e9 failure");
+        appender.close();
+
+        String lineSeparator = System.getProperty("line.separator");
+        byte[] first = ("INFO com.example.Payment - premi\u00e8re \u00e9tape" + lineSeparator
+                + "ERROR com.example.Payment - \u00e9chec du paiement" + lineSeparator).getBytes(StandardCharsets.UTF_8);
+        byte[] second = ("INFO com.example.Payment - second try" + lineSeparator
+                + "ERROR com.example.Payment - \u00fcn\u00efc\u00f6d\u00e9 failure" + lineSeparator).getBytes(StandardCharsets.UTF_8);
+
+        IncidentIndex index = IncidentIndex.forLogFile(new File(folder.getRoot(), "app.log").getPath());
+        List<Incident> incidents = index.find(Long.MIN_VALUE, Long.MAX_VALUE, "com.example");
+        assertEquals(2, incidents.size());
+        assertEquals(0, incidents.get(0).getOffset());
+        assertEquals(first.length, incidents.get(0).getLength());
+        assertEquals(incidents.get(0).getLength(), incidents.get(1).getOffset());
+        assertEquals(second.length, incidents.get(1).getLength());
+        assertEquals(2, incidents.get(1).getEventCount());
+
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        index.copyTo(incidents.get(1), bytes);
+        assertArrayEquals(second, bytes.toByteArray());
+    }
+
+    @Test
+    public void durabilityOption() {
+        BufferingForwardingAppender appender = new BufferingForwardingAppender();
+        assertEquals("NONE", appender.getDurability());
+
+        appender.setDurability("group-commit");
+        assertEquals("GROUP_COMMIT", appender.getDurability());
+
+        appender.setDurability(" fsync ");
+        assertEquals("FSYNC", appender.getDurability());
+
+        appender.setDurability("sometimes");
+        assertEquals("FSYNC", appender.getDurability());
+    }
+
+    private BufferingForwardingAppender appender(final String durability) {
+        return appender(durability, false);
+    }
+
+    private BufferingForwardingAppender appender(final String durability, final boolean incidentIndex) {
+        BufferingForwardingAppender appender = new BufferingForwardingAppender();
+        appender.setLayout(new PatternLayout("%p %c - %m%n"));
+        appender.setEncoding("UTF-8");
+        appender.setFile(new File(folder.getRoot(), "app.log").getPath());
+        appender.setAppend(false);
+        appender.setTriggerThreshold(Level.ERROR);
+        appender.setIncidentIndex(incidentIndex);
+        appender.setDurability(durability);
+        appender.setGroupCommitWindow(20);
+        appender.activateOptions();
+        return appender;
+    }
+
+    private Logger logger(final String name, final BufferingForwardingAppender appender) {
+        Logger logger = Logger.getLogger(name);
+        logger.setAdditivity(false);
+        logger.setLevel(Level.ALL);
+        logger.addAppender(appender);
+        loggers.add(logger);
+        return logger;
+    }
+}
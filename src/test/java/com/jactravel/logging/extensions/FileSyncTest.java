@@ -0,0 +1,138 @@
+package com.jactravel.logging.extensions;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.channels.ClosedByInterruptException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class FileSyncTest {
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    @Test
+    public void committerSharesForceBetweenFlushes() throws Exception {
+        File log = folder.newFile("app.log");
+        final FileOutputStream out = new FileOutputStream(log);
+        final FileSync fileSync = new FileSync();
+        fileSync.setFile(log);
+        fileSync.setWindow(50);
+        fileSync.start();
+
+        //
+        //   flushes are serialized like appenders called under the monitor
+        //   of the logger.
+        //
+        final Object logger = new Object();
+        final int threads = 8;
+        final CountDownLatch start = new CountDownLatch(1);
+        List<Thread> flushers = new ArrayList<Thread>();
+        for (int i = 0; i < threads; i++) {
+            Thread flusher = new Thread(() -> {
+                try {
+                    start.await();
+                    synchronized (logger) {
+                        out.write('x');
+                        fileSync.register();
+                    }
+                } catch (Exception e) {
+                    throw new IllegalStateException(e);
+                }
+            });
+            flusher.start();
+            flushers.add(flusher);
+        }
+        start.countDown();
+        for (Thread flusher : flushers) {
+            flusher.join();
+        }
+        fileSync.stop();
+        out.close();
+
+        assertEquals(threads, fileSync.getFlushCount());
+        assertEquals(threads, fileSync.getCommittedCount());
+        assertTrue(fileSync.getSyncCount() >= 1);
+        assertTrue(fileSync.getSyncCount() < threads);
+    }
+
+    @Test
+    public void forceWithoutFileCommitsFlushes() throws Exception {
+        FileSync fileSync = new FileSync();
+        fileSync.register();
+        fileSync.force();
+
+        assertEquals(1, fileSync.getCommittedCount());
+        assertEquals(0, fileSync.getSyncCount());
+    }
+
+    @Test
+    public void forceOfInterruptedThreadKeepsFileOpen() throws Exception {
+        File log = folder.newFile("app.log");
+        FileOutputStream out = new FileOutputStream(log);
+        FileSync fileSync = new FileSync();
+        fileSync.setFile(log);
+        fileSync.register();
+
+        Thread.currentThread().interrupt();
+        fileSync.force();
+
+        assertTrue(Thread.interrupted());
+        assertTrue(out.getChannel().isOpen());
+        assertEquals(1, fileSync.getSyncCount());
+        out.close();
+    }
+
+    @Test
+    public void interruptDuringForceKeepsStreamsOpen() throws Exception {
+        File log = folder.newFile("app.log");
+        final FileOutputStream out = new FileOutputStream(log);
+        final IncidentIndex index = IncidentIndex.forLogFile(log.getPath());
+        final FileSync fileSync = new FileSync();
+        fileSync.setFile(log);
+        fileSync.setIndex(index);
+
+        final long deadline = System.currentTimeMillis() + 500;
+        Thread flusher = new Thread(() -> {
+            while (System.currentTimeMillis() < deadline) {
+                try {
+                    out.write('x');
+                    index.append(new Incident(1L, "ERROR", "a", "app.log", 0L, 1L, 1));
+                    fileSync.register();
+                    fileSync.force();
+                } catch (ClosedByInterruptException e) {
+                    // interrupted again while forcing again, given up
+                } catch (IOException e) {
+                    throw new IllegalStateException(e);
+                }
+                Thread.interrupted();
+            }
+        });
+        flusher.start();
+        while (flusher.isAlive()) {
+            flusher.interrupt();
+            Thread.sleep(1);
+        }
+
+        //
+        //   only the descriptors used for forcing may have been closed.
+        //
+        assertTrue(out.getChannel().isOpen());
+        out.write('x');
+        index.append(new Incident(2L, "ERROR", "a", "app.log", 0L, 1L, 1));
+        fileSync.register();
+        fileSync.force();
+        assertEquals(fileSync.getFlushCount(), fileSync.getCommittedCount());
+        out.close();
+        index.close();
+    }
+}
@@ -0,0 +1,83 @@
+package com.jactravel.logging.extensions;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.List;
+import java.util.Map;
+
+import static org.junit.Assert.assertEquals;
+
+public class IncidentIndexTest {
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    @Test
+    public void remapFollowsRollover() throws Exception {
+        IncidentIndex index = indexWithBackups();
+        Map<String, String> before = IncidentIndex.identify(folder.getRoot(), "app.log", 2);
+
+        Files.delete(log("app.log.2").toPath());
+        Files.move(log("app.log.1").toPath(), log("app.log.2").toPath());
+        Files.move(log("app.log").toPath(), log("app.log.1").toPath());
+        Files.write(log("app.log").toPath(), new byte[0]);
+        index.remap("app.log", before, IncidentIndex.identify(folder.getRoot(), "app.log", 2));
+
+        List<Incident> incidents = index.read();
+        assertEquals(3, incidents.size());
+        assertEquals("app.log.1", incidents.get(0).getFileName());
+        assertEquals("app.log.2", incidents.get(1).getFileName());
+        assertEquals("other.log", incidents.get(2).getFileName());
+    }
+
+    @Test
+    public void remapFollowsPartialRollover() throws Exception {
+        IncidentIndex index = indexWithBackups();
+        Map<String, String> before = IncidentIndex.identify(folder.getRoot(), "app.log", 3);
+
+        //
+        //   the rename of app.log.1 fails, RollingFileAppender stops there
+        //   and keeps appending to app.log.
+        //
+        Files.move(log("app.log.2").toPath(), log("app.log.3").toPath());
+        index.remap("app.log", before, IncidentIndex.identify(folder.getRoot(), "app.log", 3));
+
+        List<Incident> incidents = index.read();
+        assertEquals(4, incidents.size());
+        assertEquals("app.log", incidents.get(0).getFileName());
+        assertEquals("app.log.1", incidents.get(1).getFileName());
+        assertEquals("app.log.3", incidents.get(2).getFileName());
+        assertEquals("other.log", incidents.get(3).getFileName());
+    }
+
+    @Test
+    public void findByTimeAndLogger() throws Exception {
+        IncidentIndex index = new IncidentIndex(folder.newFile("app.log.idx"));
+        index.append(new Incident(100L, "ERROR", "com.example.Service", "app.log", 0L, 10L, 1));
+        index.append(new Incident(200L, "FATAL", "com.example.Service", "app.log", 10L, 10L, 1));
+        index.append(new Incident(300L, "ERROR", "com.examples", "app.log", 20L, 10L, 1));
+
+        assertEquals(2, index.find(150L, 300L, null).size());
+        assertEquals(2, index.find(Long.MIN_VALUE, Long.MAX_VALUE, "com.example").size());
+        assertEquals(200L, index.find(150L, 300L, "com.example").get(0).getTimestamp());
+    }
+
+    private IncidentIndex indexWithBackups() throws Exception {
+        IncidentIndex index = new IncidentIndex(folder.newFile("app.log.idx"));
+        String[] names = {"app.log", "app.log.1", "app.log.2", "other.log"};
+        for (int i = 0; i < names.length; i++) {
+            Files.write(log(names[i]).toPath(), names[i].getBytes(StandardCharsets.UTF_8));
+            index.append(new Incident(i, "ERROR", "a", names[i], 0L, names[i].length(), 1));
+        }
+        return index;
+    }
+
+    private File log(final String name) {
+        return new File(folder.getRoot(), name);
+    }
+}